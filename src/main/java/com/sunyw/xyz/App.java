@@ -2,7 +2,6 @@ package com.sunyw.xyz;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.scheduling.annotation.EnableAsync;
 
 /**
  * 名称: XX定义
@@ -14,7 +13,6 @@ import org.springframework.scheduling.annotation.EnableAsync;
  * 时间: 2023/02/07 12:59
  */
 @SpringBootApplication
-@EnableAsync
 public class App {
     public static void main(String[] args) {
         SpringApplication.run(App.class, args);
@@ -1,21 +1,18 @@
 package com.sunyw.xyz.api;
 
-import cn.hutool.core.util.IdUtil;
-import cn.hutool.http.HttpRequest;
-import cn.hutool.http.HttpResponse;
-import cn.hutool.http.HttpUtil;
 import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
-import com.sunyw.xyz.util.LocalCacheUtils;
+import com.sunyw.xyz.config.FeishuAppProperties.App;
+import com.sunyw.xyz.config.FeishuAppRegistry;
+import com.sunyw.xyz.util.Deadline;
+import com.sunyw.xyz.util.SimilarQuestionIndex;
+import com.sunyw.xyz.util.StageMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Component;
-import org.springframework.util.ObjectUtils;
-
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * 名称: XX定义
@@ -30,60 +27,162 @@ import java.util.Map;
 @Slf4j
 public class AsyncService {
 
-    @Value("${openai.token}")
-    private String openAiToken;
+    private static final String BUSY_TEXT = "当前提问的人太多了,请稍后再问我一次吧!";
+
+    private static final String TIMEOUT_TEXT = "抱歉,这个问题等待太久已取消回答,重新提问一下或许就可以获取到你想要的回答!";
+
+    /**
+     * 回答最大token数
+     */
+    private static final int MAX_TOKENS = 2048;
+
+    private static final StageMetrics LISTEN_METRICS = StageMetrics.of("listen");
+
+    private static final StageMetrics DEADLINE_METRICS = StageMetrics.of("deadline");
 
     @Value("${openai.timeout}")
     private Integer timeOut;
 
-    @Value("${feishu.gpt.appid}")
-    private String gptAppId;
+    /**
+     * 消息从创建开始的处理时限：毫秒
+     */
+    @Value("${feishu.event.slo:60000}")
+    private Long slo;
+
+    /**
+     * 在队列中或等待OpenAI限流时超时被取消是否回复提示,收到时已超时(重复推送或积压)的消息不回复
+     */
+    @Value("${feishu.event.timeoutReply:false}")
+    private Boolean timeoutReply;
+
+    @Autowired
+    private FeishuReplySender feishuReplySender;
+
+    @Autowired
+    private FeishuAppRegistry feishuAppRegistry;
+
+    @Autowired
+    private SimilarQuestionIndex similarQuestionIndex;
 
-    @Value("${feishu.gpt.appSecret}")
-    private String gptAppSecret;
+    @Autowired
+    private OpenAiClient openAiClient;
 
 
-    @Async("threadPoolTaskExecutor")
+    /**
+     * 接收飞书消息,按app_id分发到对应应用的线程池
+     *
+     * @param body 飞书事件请求体
+     */
     public void listen(String body) {
         log.info("请求信息:[{}]", body);
-        JSONObject messageJson = getMessageJson(body);
-        String messageId = messageJson.getString("message_id");
-        String text = getText(messageJson);
-        Map<String, String> headers = new HashMap<String, String>();
-        headers.put("Content-Type", "application/json;charset=UTF-8");
-        JSONObject json = new JSONObject();
-        //选择模型
-        json.put("model", "text-davinci-003");
-        //添加我们需要输入的内容
-        json.put("prompt", text);
-        json.put("temperature", 0.9);
-        json.put("max_tokens", 2048);
-        json.put("top_p", 1);
-        json.put("frequency_penalty", 0.0);
-        json.put("presence_penalty", 0.6);
+        String appId;
+        String messageId;
+        String text;
+        long createTime;
+        //在飞书回调线程中解析,解析失败时只记录,不能抛出异常导致飞书重复推送
+        try {
+            JSONObject requestJson = JSON.parseObject(body);
+            appId = getAppId(requestJson);
+            JSONObject messageJson = getMessageJson(requestJson);
+            messageId = messageJson.getString("message_id");
+            text = getText(messageJson);
+            createTime = getCreateTime(requestJson, messageJson);
+        } catch (Exception e) {
+            log.error("飞书消息解析失败,消息已忽略:[{}]", body, e);
+            LISTEN_METRICS.incr("malformed");
+            return;
+        }
+        App app = feishuAppRegistry.resolve(appId);
+        if (app == null) {
+            log.warn("未注册的飞书应用:[{}],消息已忽略", appId);
+            LISTEN_METRICS.incr("unknownApp");
+            return;
+        }
+        Deadline deadline = Deadline.of(createTime, slo);
+        if (deadline.isExpired()) {
+            cancel(messageId, app, "expiredOnReceive", false);
+            return;
+        }
+        try {
+            feishuAppRegistry.execute(app, () -> answer(text, messageId, app, deadline));
+        } catch (TaskRejectedException e) {
+            log.warn("飞书应用[{}]处理队列已满,消息id:[{}]", app.getName(), messageId);
+            feishuReplySender.trySend(BUSY_TEXT, messageId, app);
+        }
+    }
+
+    private void answer(String text, String messageId, App app, Deadline deadline) {
+        if (deadline.isExpired()) {
+            cancel(messageId, app, "expiredInQueue", timeoutReply);
+            return;
+        }
+        String reused = similarQuestionIndex.lookup(text, MAX_TOKENS);
+        if (reused != null) {
+            feishuReplySender.send(reused, messageId, app, deadline);
+            return;
+        }
         String respText;
         try {
-            HttpResponse response = HttpRequest.post("https://api.openai.com/v1/completions")
-                    .headerMap(headers, false)
-                    .bearerAuth(openAiToken)
-                    .body(String.valueOf(json))
-                    .timeout(timeOut)
-                    .execute();
-            JSONObject jsonObject = JSON.parseObject(response.body());
-            Object choices = jsonObject.get("choices");
-            JSONArray objects = JSON.parseArray(JSON.toJSONString(choices));
-            JSONObject object = JSON.parseObject(JSON.toJSONString(objects.get(0)));
-            log.info("回答:[{}]", object.get("text").toString());
-            respText = object.get("text").toString();
+            respText = openAiClient.complete(app, text, MAX_TOKENS, deadline, timeOut);
+            log.info("回答:[{}]", respText);
+            similarQuestionIndex.put(text, respText, MAX_TOKENS);
+        } catch (OpenAiRejectedException e) {
+            if (OpenAiRejectedException.EXPIRED.equals(e.getReason())) {
+                cancel(messageId, app, "expiredBeforeUpstream", timeoutReply);
+                return;
+            }
+            log.warn("OpenAI限流,消息id:[{}]", messageId);
+            respText = BUSY_TEXT;
         } catch (Exception e) {
             respText = "我出现了一些错误,这可能是因为网络不稳定导致的,重新提问一下或许就可以获取到你想要的回答!";
         }
-        respMessage(respText, messageId, gptAppId, gptAppSecret);
+        feishuReplySender.send(respText, messageId, app, deadline);
+    }
+
+    /**
+     * 取消已超过处理时限的消息
+     */
+    private void cancel(String messageId, App app, String reason, boolean reply) {
+        DEADLINE_METRICS.incr(reason);
+        log.warn("消息已超过处理时限,取消处理,消息id:[{}]", messageId);
+        if (reply) {
+            feishuReplySender.trySend(TIMEOUT_TEXT, messageId, app);
+        }
     }
 
+    /**
+     * 获取消息创建时间,2.0版本事件在header中,获取不到时按当前时间计算
+     *
+     * @param requestJson
+     * @param messageJson
+     * @return
+     */
+    private long getCreateTime(JSONObject requestJson, JSONObject messageJson) {
+        JSONObject headerJson = requestJson.getJSONObject("header");
+        String createTime = headerJson == null ? null : headerJson.getString("create_time");
+        if (createTime == null) {
+            createTime = messageJson.getString("create_time");
+        }
+        return NumberUtils.toLong(createTime, System.currentTimeMillis());
+    }
+
+
+    /**
+     * 获取事件所属应用,2.0版本事件在header中,1.0版本在event中
+     *
+     * @param requestJson
+     * @return
+     */
+    private String getAppId(JSONObject requestJson) {
+        JSONObject headerJson = requestJson.getJSONObject("header");
+        if (headerJson != null && headerJson.containsKey("app_id")) {
+            return headerJson.getString("app_id");
+        }
+        JSONObject eventJson = requestJson.getJSONObject("event");
+        return eventJson == null ? null : eventJson.getString("app_id");
+    }
 
-    private JSONObject getMessageJson(String body) {
-        JSONObject requestJson = JSON.parseObject(body);
+    private JSONObject getMessageJson(JSONObject requestJson) {
         JSONObject eventJson = JSON.parseObject(JSON.toJSONString(requestJson.get("event")));
         return JSON.parseObject(JSON.toJSONString(eventJson.get("message")));
     }
@@ -120,36 +219,4 @@ public class AsyncService {
         log.info("请求问题:[{}]", text);
         return text;
     }
-
-
-    @Async("threadPoolTaskExecutor")
-    public void respMessage(String respText, String messageId, String appId, String appSecret) {
-        String requestUrl = "https://open.feishu.cn/open-apis/im/v1/messages/" + messageId + "/reply";
-        String token = getToken(appId, appSecret);
-        JSONObject jsonObject = new JSONObject();
-        JSONObject text = new JSONObject();
-        text.put("text", respText);
-        jsonObject.put("content", text.toJSONString());
-        jsonObject.put("msg_type", "text");
-        jsonObject.put("uuid", IdUtil.objectId());
-        String body = HttpUtil.createPost(requestUrl).auth("Bearer " + token).body(jsonObject.toJSONString()).execute().body();
-        log.info("飞书返回信息:[{}]", body);
-    }
-
-
-    private String getToken(String appId, String appSecret) {
-
-        Object tenantAccessToken = LocalCacheUtils.get(appId + "tenant_access_token");
-        if (ObjectUtils.isEmpty(tenantAccessToken)) {
-            String requestUrl = "https://open.feishu.cn/open-apis/auth/v3/tenant_access_token/internal";
-            String post = HttpUtil.post(requestUrl, "{\"app_id\": \"" + appId + "\",\"app_secret\": \"" + appSecret + "\"}");
-            JSONObject jsonObject = JSON.parseObject(post);
-            if (0 == jsonObject.getInteger("code")) {
-                tenantAccessToken = jsonObject.getString("tenant_access_token");
-                log.info("获取token为:[{}]", tenantAccessToken);
-                LocalCacheUtils.put(appId + "tenant_access_token", tenantAccessToken);
-            }
-        }
-        return tenantAccessToken.toString();
-    }
 }
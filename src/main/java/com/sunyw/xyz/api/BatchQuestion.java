@@ -0,0 +1,24 @@
+package com.sunyw.xyz.api;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 名称: 批量问题请求
+ * 功能: <功能详细描述>
+ * 方法: <方法简述-方法描述>
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 说明描述
+ * 时间: 2023/03/17 10:40
+ */
+@Data
+public class BatchQuestion {
+
+    /**
+     * 问题列表,结果按完成顺序返回,通过index对应
+     */
+    private List<String> prompts;
+
+}
@@ -0,0 +1,213 @@
+package com.sunyw.xyz.api;
+
+import com.alibaba.fastjson.JSONObject;
+import com.sunyw.xyz.util.SimilarQuestionIndex;
+import com.sunyw.xyz.util.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 名称: 批量问题处理
+ * 功能: 将多个问题打包成一次completions请求,在低优先级线程池中执行,按完成顺序输出NDJSON
+ * 方法: answer-处理批量问题并输出结果
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 打包时同时受每次请求的问题数量和估算token数限制,限流由OpenAiClient按批量额度比例统一处理
+ * 时间: 2023/03/17 11:02
+ */
+@Component
+@Slf4j
+public class BatchQuestionService {
+
+    private static final StageMetrics METRICS = StageMetrics.of("batch");
+
+    /**
+     * 每次请求最多包含的问题数量
+     */
+    @Value("${openai.batch.maxPrompts:20}")
+    private Integer maxPrompts;
+
+    /**
+     * 每次请求的问题估算token数上限
+     */
+    @Value("${openai.batch.maxPromptTokens:2000}")
+    private Integer maxPromptTokens;
+
+    /**
+     * 每个回答最大token数
+     */
+    @Value("${openai.batch.maxTokens:256}")
+    private Integer maxTokens;
+
+    @Value("${openai.timeout}")
+    private Integer timeOut;
+
+    @Autowired
+    @Qualifier("batchTaskExecutor")
+    private ThreadPoolTaskExecutor batchTaskExecutor;
+
+    @Autowired
+    private OpenAiClient openAiClient;
+
+    @Autowired
+    private SimilarQuestionIndex similarQuestionIndex;
+
+    /**
+     * 处理批量问题,每完成一个问题输出一行JSON
+     *
+     * @param prompts 问题列表
+     * @param out     输出流
+     * @throws IOException
+     */
+    public void answer(List<String> prompts, OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        METRICS.add("prompts", prompts.size());
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < prompts.size(); i++) {
+            String reused = similarQuestionIndex.lookup(prompts.get(i), maxTokens);
+            if (reused != null) {
+                write(out, line(i, prompts.get(i), reused, null));
+            } else {
+                pending.add(i);
+            }
+        }
+        out.flush();
+        CompletionService<List<JSONObject>> completionService = new ExecutorCompletionService<>(batchTaskExecutor.getThreadPoolExecutor());
+        Map<Future<List<JSONObject>>, List<Integer>> futures = new HashMap<>();
+        try {
+            for (List<Integer> chunk : pack(prompts, pending)) {
+                try {
+                    futures.put(completionService.submit(() -> complete(prompts, chunk)), chunk);
+                } catch (RejectedExecutionException e) {
+                    //批量线程池队列已满,这部分问题直接返回错误
+                    METRICS.add("rejected", chunk.size());
+                    for (Integer index : chunk) {
+                        write(out, line(index, prompts.get(index), null, "批量问题队列已满,请稍后重试"));
+                    }
+                }
+            }
+            out.flush();
+            for (int i = 0; i < futures.size(); i++) {
+                Future<List<JSONObject>> future = completionService.take();
+                List<JSONObject> lines;
+                try {
+                    lines = future.get();
+                } catch (ExecutionException e) {
+                    log.error("批量问题处理出错", e);
+                    List<Integer> chunk = futures.get(future);
+                    METRICS.add("failure", chunk.size());
+                    lines = new ArrayList<>(chunk.size());
+                    for (Integer index : chunk) {
+                        lines.add(line(index, prompts.get(index), null, String.valueOf(e.getCause())));
+                    }
+                }
+                for (JSONObject line : lines) {
+                    write(out, line);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //客户端断开或线程被中断时取消未完成的请求,等待限流的任务会响应中断退出
+            futures.keySet().forEach(future -> future.cancel(true));
+        }
+        long cost = Math.max(1, System.currentTimeMillis() - start);
+        METRICS.recordLatency(cost);
+        log.info("批量问题处理结束,数量:[{}],请求次数:[{}],耗时:[{}]毫秒,吞吐:[{}]条/秒",
+                prompts.size(), futures.size(), cost, prompts.size() * 1000L / cost);
+    }
+
+    /**
+     * 按问题数量和估算token数打包
+     */
+    private List<List<Integer>> pack(List<String> prompts, List<Integer> pending) {
+        List<List<Integer>> chunks = new ArrayList<>();
+        List<Integer> chunk = new ArrayList<>();
+        int chunkTokens = 0;
+        for (Integer index : pending) {
+            int tokens = OpenAiClient.estimateTokens(prompts.get(index));
+            if (!chunk.isEmpty() && (chunk.size() >= maxPrompts || chunkTokens + tokens > maxPromptTokens)) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkTokens = 0;
+            }
+            chunk.add(index);
+            chunkTokens += tokens;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private List<JSONObject> complete(List<String> prompts, List<Integer> chunk) throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("批量问题已取消");
+        }
+        List<String> chunkPrompts = new ArrayList<>(chunk.size());
+        for (Integer index : chunk) {
+            chunkPrompts.add(prompts.get(index));
+        }
+        METRICS.incr("upstreamRequests");
+        List<JSONObject> lines = new ArrayList<>(chunk.size());
+        try {
+            List<String> answers = openAiClient.completeBatch(chunkPrompts, maxTokens, timeOut);
+            for (int i = 0; i < chunk.size(); i++) {
+                String answer = answers.get(i);
+                if (answer == null) {
+                    METRICS.incr("failure");
+                    lines.add(line(chunk.get(i), chunkPrompts.get(i), null, "未返回回答"));
+                } else {
+                    METRICS.incr("success");
+                    similarQuestionIndex.put(chunkPrompts.get(i), answer, maxTokens);
+                    lines.add(line(chunk.get(i), chunkPrompts.get(i), answer, null));
+                }
+            }
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException("批量问题已取消");
+        } catch (Exception e) {
+            log.error("批量问题请求OpenAI出错,问题数量:[{}]", chunk.size(), e);
+            METRICS.add("failure", chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                lines.add(line(chunk.get(i), chunkPrompts.get(i), null, String.valueOf(e)));
+            }
+        }
+        return lines;
+    }
+
+    private JSONObject line(int index, String prompt, String answer, String error) {
+        JSONObject line = new JSONObject(true);
+        line.put("index", index);
+        line.put("prompt", prompt);
+        if (error == null) {
+            line.put("answer", answer);
+        } else {
+            line.put("error", error);
+        }
+        return line;
+    }
+
+    private void write(OutputStream out, JSONObject line) throws IOException {
+        out.write(line.toJSONString().getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
@@ -1,17 +1,26 @@
 package com.sunyw.xyz.api;
 
+import com.sunyw.xyz.util.StageMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -28,9 +37,17 @@ import java.nio.charset.StandardCharsets;
 @RequestMapping("/api")
 public class ChatGptApi {
 
+    private static final String NDJSON = "application/x-ndjson";
+
     @Autowired
     private AsyncService asyncService;
 
+    @Autowired
+    private BatchQuestionService batchQuestionService;
+
+    @Value("${openai.batch.maxSize:1000}")
+    private Integer batchMaxSize;
+
     @PostMapping("/test")
     public Server test(@RequestBody Server server) {
 
@@ -44,6 +61,30 @@ public class ChatGptApi {
         asyncService.listen(getBody(request));
         log.info("消息接收结束:耗时:[{}]毫秒", (System.currentTimeMillis() - l));
     }
+
+    /**
+     * 批量提问,按完成顺序以NDJSON格式逐行返回结果
+     */
+    @PostMapping("/question/batch")
+    public ResponseEntity<StreamingResponseBody> batchQuestion(@RequestBody BatchQuestion batchQuestion) {
+        List<String> prompts = batchQuestion.getPrompts();
+        if (prompts == null || prompts.isEmpty() || prompts.size() > batchMaxSize
+                || prompts.stream().anyMatch(StringUtils::isBlank)) {
+            log.warn("批量提问参数不合法,问题数量需在1到[{}]之间且不能为空", batchMaxSize);
+            return ResponseEntity.badRequest().build();
+        }
+        StreamingResponseBody body = out -> batchQuestionService.answer(prompts, out);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    /**
+     * 各处理阶段的计数与耗时指标
+     */
+    @GetMapping("/metrics")
+    public Map<String, Map<String, Object>> metrics() {
+        return StageMetrics.snapshotAll();
+    }
+
     private String getBody(HttpServletRequest request) {
         try (InputStream inputStream = request.getInputStream()) {
             return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
@@ -0,0 +1,220 @@
+package com.sunyw.xyz.api;
+
+import cn.hutool.core.util.IdUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sunyw.xyz.config.FeishuAppProperties.App;
+import com.sunyw.xyz.config.FeishuAppRegistry;
+import com.sunyw.xyz.util.Deadline;
+import com.sunyw.xyz.util.LocalCacheUtils;
+import com.sunyw.xyz.util.PooledHttpClient;
+import com.sunyw.xyz.util.PooledHttpClient.HttpResult;
+import com.sunyw.xyz.util.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 名称: 飞书消息回复
+ * 功能: 独立的回复发送阶段,按应用限流,被限流时保持uuid重试
+ * 方法: send-提交回复消息, trySend-提交回复消息,队列满时丢弃
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 飞书回复消息接口限额为单应用50次/秒,回复线程池、token和限流状态按应用隔离,同一uuid在1小时内至多成功回复一条消息
+ * 时间: 2023/03/06 11:02
+ */
+@Component
+@Slf4j
+public class FeishuReplySender {
+
+    private static final String REPLY_URL = "https://open.feishu.cn/open-apis/im/v1/messages/%s/reply";
+
+    private static final String TOKEN_URL = "https://open.feishu.cn/open-apis/auth/v3/tenant_access_token/internal";
+
+    private static final String TOKEN_CACHE_KEY = "tenant_access_token";
+
+    /**
+     * 飞书限流错误码
+     */
+    private static final Set<Integer> THROTTLED_CODES = ImmutableSet.of(99991400, 230020);
+
+    /**
+     * 飞书token失效错误码
+     */
+    private static final Set<Integer> TOKEN_INVALID_CODES = ImmutableSet.of(99991661, 99991663);
+
+    /**
+     * 飞书限流响应头,表示距离限流窗口重置的秒数
+     */
+    private static final String RATE_LIMIT_RESET_HEADER = "x-ogw-ratelimit-reset";
+
+    private static final StageMetrics METRICS = StageMetrics.of("feishuReply");
+
+    @Value("${feishu.reply.qps:50}")
+    private Double replyQps;
+
+    @Value("${feishu.reply.maxAttempts:3}")
+    private Integer maxAttempts;
+
+    @Value("${feishu.reply.backoff:500}")
+    private Long backoff;
+
+    @Value("${feishu.reply.timeout:10000}")
+    private Integer timeOut;
+
+    @Autowired
+    private FeishuAppRegistry feishuAppRegistry;
+
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+    /**
+     * 提交回复消息,由应用的回复线程池异步发送,队列满时由当前线程发送,第一次发送总会尝试,重试不超过截止时间
+     * <p>注：只能在应用自己的处理线程中调用,不能在飞书回调线程中调用</p>
+     *
+     * @param respText  回复内容
+     * @param messageId 被回复的消息id
+     * @param app       回复所用的飞书应用
+     * @param deadline  截止时间,超过后不再重试
+     */
+    public void send(String respText, String messageId, App app, Deadline deadline) {
+        submit(respText, messageId, app, deadline, true);
+    }
+
+    /**
+     * 提交回复消息,由应用的回复线程池异步发送,队列满时丢弃,不会占用当前线程
+     *
+     * @param respText  回复内容
+     * @param messageId 被回复的消息id
+     * @param app       回复所用的飞书应用
+     */
+    public void trySend(String respText, String messageId, App app) {
+        submit(respText, messageId, app, null, false);
+    }
+
+    private void submit(String respText, String messageId, App app, Deadline deadline, boolean callerRuns) {
+        JSONObject jsonObject = new JSONObject();
+        JSONObject text = new JSONObject();
+        text.put("text", respText);
+        jsonObject.put("content", text.toJSONString());
+        jsonObject.put("msg_type", "text");
+        //幂等键,重试时保持不变
+        jsonObject.put("uuid", IdUtil.objectId());
+        String body = jsonObject.toJSONString();
+        long submitTime = System.currentTimeMillis();
+        Runnable task = () -> deliver(body, messageId, app, deadline, submitTime);
+        METRICS.incr("submitted");
+        try {
+            feishuAppRegistry.executeReply(app, task);
+        } catch (TaskRejectedException e) {
+            if (!callerRuns) {
+                METRICS.incr("dropped");
+                log.warn("飞书应用[{}]回复队列已满,回复已丢弃,消息id:[{}]", app.getName(), messageId);
+                return;
+            }
+            //回复队列已满,由应用自己的处理线程发送,形成背压
+            METRICS.incr("callerRuns");
+            task.run();
+        }
+    }
+
+    private void deliver(String body, String messageId, App app, Deadline deadline, long submitTime) {
+        String requestUrl = String.format(REPLY_URL, messageId);
+        String appId = app.getAppId();
+        RateLimiter rateLimiter = rateLimiters.computeIfAbsent(appId,
+                k -> RateLimiter.create(app.getReplyQps() == null ? replyQps : app.getReplyQps()));
+        for (int attempt = 1; ; attempt++) {
+            //已经获取到的回答即使超过截止时间也要送达,第一次发送至少等待一个回复超时时间,截止时间只限制重试
+            boolean bounded = deadline != null && attempt > 1;
+            if (deadline == null) {
+                rateLimiter.acquire();
+            } else if (!bounded) {
+                if (!rateLimiter.tryAcquire(Math.max(timeOut, deadline.remaining()), TimeUnit.MILLISECONDS)) {
+                    METRICS.incr("rateLimited");
+                    log.warn("飞书回复等待限流超时,已放弃,消息id:[{}]", messageId);
+                    return;
+                }
+            } else if (!rateLimiter.tryAcquire(Math.max(0L, deadline.remaining()), TimeUnit.MILLISECONDS)) {
+                METRICS.incr("expired");
+                log.warn("飞书回复等待限流超过截止时间,不再重试,消息id:[{}]", messageId);
+                return;
+            }
+            long waitMillis = backoff << (attempt - 1);
+            boolean retryable;
+            try {
+                String token = getToken(appId, app.getAppSecret());
+                HttpResult result = PooledHttpClient.postJson(requestUrl,
+                        Collections.singletonMap("Authorization", "Bearer " + token), body,
+                        bounded ? deadline.timeout(timeOut) : timeOut);
+                JSONObject respJson = JSON.parseObject(result.getBody());
+                int code = respJson == null ? -1 : respJson.getIntValue("code");
+                if (result.getStatus() == 200 && code == 0) {
+                    METRICS.incr("success");
+                    METRICS.recordLatency(System.currentTimeMillis() - submitTime);
+                    return;
+                }
+                log.warn("飞书回复失败,第[{}]次,状态码:[{}],返回信息:[{}]", attempt, result.getStatus(), result.getBody());
+                if (TOKEN_INVALID_CODES.contains(code)) {
+                    LocalCacheUtils.remove(appId + TOKEN_CACHE_KEY);
+                }
+                boolean throttled = result.getStatus() == 429 || THROTTLED_CODES.contains(code);
+                if (throttled) {
+                    METRICS.incr("throttled");
+                    long reset = NumberUtils.toLong(result.getHeaders().getFirst(RATE_LIMIT_RESET_HEADER), 0L);
+                    waitMillis = Math.max(waitMillis, reset * 1000);
+                }
+                retryable = throttled || result.getStatus() >= 500 || TOKEN_INVALID_CODES.contains(code);
+            } catch (Exception e) {
+                log.warn("飞书回复异常,第[{}]次,消息id:[{}]", attempt, messageId, e);
+                retryable = true;
+            }
+            if (!retryable || attempt >= maxAttempts) {
+                METRICS.incr("failure");
+                log.error("飞书回复最终失败,消息id:[{}],尝试次数:[{}]", messageId, attempt);
+                return;
+            }
+            if (deadline != null && deadline.remaining() < waitMillis) {
+                METRICS.incr("expired");
+                log.warn("飞书回复已超过截止时间,不再重试,消息id:[{}]", messageId);
+                return;
+            }
+            METRICS.incr("retry");
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                METRICS.incr("failure");
+                return;
+            }
+        }
+    }
+
+    private String getToken(String appId, String appSecret) throws Exception {
+        Object tenantAccessToken = LocalCacheUtils.get(appId + TOKEN_CACHE_KEY);
+        if (ObjectUtils.isEmpty(tenantAccessToken)) {
+            JSONObject request = new JSONObject();
+            request.put("app_id", appId);
+            request.put("app_secret", appSecret);
+            HttpResult result = PooledHttpClient.postJson(TOKEN_URL, null, request.toJSONString(), timeOut);
+            JSONObject jsonObject = JSON.parseObject(result.getBody());
+            if (jsonObject == null || 0 != jsonObject.getIntValue("code")) {
+                throw new IllegalStateException("获取飞书token失败:" + result.getBody());
+            }
+            tenantAccessToken = jsonObject.getString("tenant_access_token");
+            log.info("获取token为:[{}]", tenantAccessToken);
+            LocalCacheUtils.put(appId + TOKEN_CACHE_KEY, tenantAccessToken);
+        }
+        return tenantAccessToken.toString();
+    }
+}
@@ -0,0 +1,261 @@
+package com.sunyw.xyz.api;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sunyw.xyz.config.FeishuAppProperties.App;
+import com.sunyw.xyz.util.Deadline;
+import com.sunyw.xyz.util.PooledHttpClient;
+import com.sunyw.xyz.util.PooledHttpClient.HttpResult;
+import com.sunyw.xyz.util.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 名称: OpenAI调用
+ * 功能: 调用completions接口,支持一次请求多个问题
+ * 方法: complete-获取回答, completeBatch-批量问题获取回答, estimateTokens-估算token数
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: prompt为数组时,choices中的index与问题下标一一对应;
+ * 配置了账号额度(openai.rpm/openai.tpm)时所有请求共用账号限流,批量请求另外限制在额度的openai.batch.share比例内,
+ * 每个飞书应用另外限制在额度的upstreamShare比例内,避免最忙的应用占满额度;
+ * 未配置时飞书提问不限流,批量请求按openai.batch.rpm/openai.batch.tpm单独限流
+ * 时间: 2023/03/17 10:15
+ */
+@Component
+@Slf4j
+public class OpenAiClient {
+
+    private static final String COMPLETIONS_URL = "https://api.openai.com/v1/completions";
+
+    private static final StageMetrics METRICS = StageMetrics.of("openai");
+
+    @Value("${openai.token}")
+    private String openAiToken;
+
+    /**
+     * 账号每分钟请求数上限,与账号等级的额度一致,不大于0时不限流
+     */
+    @Value("${openai.rpm:0}")
+    private Integer rpm;
+
+    /**
+     * 账号每分钟token数上限,包含问题和回答,不大于0时不限流
+     */
+    @Value("${openai.tpm:0}")
+    private Integer tpm;
+
+    /**
+     * 配置了账号额度时,批量请求最多使用的额度比例
+     */
+    @Value("${openai.batch.share:0.5}")
+    private Double batchShare;
+
+    /**
+     * 配置了账号额度时,单个飞书应用默认最多使用的额度比例,应用配置了upstreamShare时以应用配置为准
+     */
+    @Value("${openai.appShare:0.5}")
+    private Double appShare;
+
+    /**
+     * 未配置账号额度时,批量请求每分钟请求数上限
+     */
+    @Value("${openai.batch.rpm:60}")
+    private Integer batchRpm;
+
+    /**
+     * 未配置账号额度时,批量请求每分钟token数上限
+     */
+    @Value("${openai.batch.tpm:150000}")
+    private Integer batchTpm;
+
+    /**
+     * 调用OpenAI至少需要的剩余时间：毫秒,剩余时间更少时回答大概率超时,不再调用
+     */
+    @Value("${openai.minRemaining:5000}")
+    private Integer minRemaining;
+
+    /**
+     * 账号限流,未配置账号额度时为null
+     */
+    private RateLimiter requestLimiter;
+
+    private RateLimiter tokenLimiter;
+
+    private RateLimiter batchRequestLimiter;
+
+    private RateLimiter batchTokenLimiter;
+
+    /**
+     * 按appId区分的应用限流,未配置账号额度时为空
+     */
+    private final ConcurrentMap<String, RateLimiter> appRequestLimiters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, RateLimiter> appTokenLimiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        requestLimiter = rpm > 0 ? RateLimiter.create(rpm / 60D) : null;
+        tokenLimiter = tpm > 0 ? RateLimiter.create(tpm / 60D) : null;
+        batchRequestLimiter = RateLimiter.create((rpm > 0 ? rpm * batchShare : batchRpm) / 60D);
+        batchTokenLimiter = RateLimiter.create((tpm > 0 ? tpm * batchShare : batchTpm) / 60D);
+        log.info("OpenAI限流初始化完成,账号每分钟请求数:[{}],账号每分钟token数:[{}],批量每秒请求数:[{}],批量每秒token数:[{}]",
+                rpm > 0 ? rpm : "不限", tpm > 0 ? tpm : "不限", batchRequestLimiter.getRate(), batchTokenLimiter.getRate());
+    }
+
+    /**
+     * 获取单个问题的回答,等待限流后剩余时间不足openai.minRemaining时不再调用OpenAI
+     *
+     * @param app       提问的飞书应用,先占用应用额度再占用账号额度
+     * @param prompt    问题
+     * @param maxTokens 回答最大token数
+     * @param deadline  消息处理截止时间
+     * @param timeOut   超时时间(毫秒)
+     * @return
+     * @throws OpenAiRejectedException 未获取到限流额度或剩余时间不足,请求未发送
+     * @throws IOException             请求失败
+     */
+    public String complete(App app, String prompt, int maxTokens, Deadline deadline, int timeOut) throws IOException {
+        if (deadline.remaining() < minRemaining) {
+            METRICS.incr("expired");
+            throw new OpenAiRejectedException(OpenAiRejectedException.EXPIRED, "剩余时间不足,未调用OpenAI");
+        }
+        int tokens = estimateTokens(prompt) + maxTokens;
+        //等待限流的时间不能占用调用OpenAI所需的最少时间
+        if (!tryAcquire(appLimiter(appRequestLimiters, requestLimiter, app), 1, deadline.remaining() - minRemaining)
+                || !tryAcquire(appLimiter(appTokenLimiters, tokenLimiter, app), tokens, deadline.remaining() - minRemaining)
+                || !tryAcquire(requestLimiter, 1, deadline.remaining() - minRemaining)
+                || !tryAcquire(tokenLimiter, tokens, deadline.remaining() - minRemaining)) {
+            METRICS.incr("throttled");
+            StageMetrics.of("app-" + app.getName()).incr("upstreamThrottled");
+            throw new OpenAiRejectedException(OpenAiRejectedException.THROTTLED, "OpenAI限流等待超时");
+        }
+        if (deadline.remaining() < minRemaining) {
+            METRICS.incr("expired");
+            throw new OpenAiRejectedException(OpenAiRejectedException.EXPIRED, "等待限流后剩余时间不足,未调用OpenAI");
+        }
+        METRICS.incr("interactive");
+        return request(Collections.singletonList(prompt), maxTokens, deadline.timeout(timeOut)).get(0);
+    }
+
+    /**
+     * 批量问题一次请求获取多个问题的回答,先占用批量额度再占用账号额度,额度不足时等待,等待期间可以被中断
+     *
+     * @param prompts   问题列表
+     * @param maxTokens 每个回答最大token数
+     * @param timeOut   超时时间(毫秒)
+     * @return 与问题顺序一致的回答,缺失的回答为null
+     * @throws InterruptedIOException 等待额度时被中断,请求未发送
+     * @throws IOException            请求失败
+     */
+    public List<String> completeBatch(List<String> prompts, int maxTokens, int timeOut) throws IOException {
+        int tokens = 0;
+        for (String prompt : prompts) {
+            tokens += estimateTokens(prompt) + maxTokens;
+        }
+        acquire(batchRequestLimiter, 1);
+        acquire(batchTokenLimiter, tokens);
+        acquire(requestLimiter, 1);
+        acquire(tokenLimiter, tokens);
+        METRICS.incr("batch");
+        return request(prompts, maxTokens, timeOut);
+    }
+
+    /**
+     * 获取应用的限流,速率为账号限流的应用额度比例
+     */
+    private RateLimiter appLimiter(ConcurrentMap<String, RateLimiter> limiters, RateLimiter accountLimiter, App app) {
+        if (accountLimiter == null) {
+            return null;
+        }
+        double share = app.getUpstreamShare() == null ? appShare : app.getUpstreamShare();
+        return limiters.computeIfAbsent(app.getAppId(), k -> RateLimiter.create(accountLimiter.getRate() * share));
+    }
+
+    private boolean tryAcquire(RateLimiter limiter, int permits, long timeOut) {
+        return limiter == null || limiter.tryAcquire(permits, Math.max(0L, timeOut), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 等待获取额度,RateLimiter.acquire不响应中断,这里分段等待,客户端断开取消任务后能及时退出
+     */
+    private void acquire(RateLimiter limiter, int permits) throws InterruptedIOException {
+        try {
+            while (!tryAcquire(limiter, permits, 1000L)) {
+                Thread.sleep(500L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("等待OpenAI限流额度时被中断");
+        }
+    }
+
+    /**
+     * 估算token数,英文约4个字符一个token,中文等非ASCII字符按每个字符2个token
+     *
+     * @param prompt 问题
+     * @return
+     */
+    public static int estimateTokens(String prompt) {
+        int ascii = 0;
+        int other = 0;
+        for (int i = 0; i < prompt.length(); i++) {
+            if (prompt.charAt(i) < 128) {
+                ascii++;
+            } else {
+                other++;
+            }
+        }
+        return (ascii + 3) / 4 + other * 2;
+    }
+
+    private List<String> request(List<String> prompts, int maxTokens, int timeOut) throws IOException {
+        JSONObject json = new JSONObject();
+        //选择模型
+        json.put("model", "text-davinci-003");
+        //添加我们需要输入的内容
+        json.put("prompt", prompts);
+        json.put("temperature", 0.9);
+        json.put("max_tokens", maxTokens);
+        json.put("top_p", 1);
+        json.put("frequency_penalty", 0.0);
+        json.put("presence_penalty", 0.6);
+        HttpResult result = PooledHttpClient.postJson(COMPLETIONS_URL,
+                Collections.singletonMap("Authorization", "Bearer " + openAiToken), json.toJSONString(), timeOut);
+        if (result.getStatus() != 200) {
+            throw new IOException("OpenAI返回异常,状态码:" + result.getStatus() + ",返回信息:" + result.getBody());
+        }
+        JSONObject respJson = JSON.parseObject(result.getBody());
+        JSONArray choices = respJson == null ? null : respJson.getJSONArray("choices");
+        if (choices == null) {
+            throw new IOException("OpenAI返回信息缺少choices:" + result.getBody());
+        }
+        String[] answers = new String[prompts.size()];
+        for (int i = 0; i < choices.size(); i++) {
+            JSONObject choice = choices.getJSONObject(i);
+            int index = choice.getIntValue("index");
+            if (index < answers.length) {
+                answers[index] = choice.getString("text");
+            }
+        }
+        if (answers[0] == null && prompts.size() == 1) {
+            throw new IOException("OpenAI未返回回答:" + result.getBody());
+        }
+        return Arrays.asList(answers);
+    }
+}
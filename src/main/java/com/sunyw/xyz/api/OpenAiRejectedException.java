@@ -0,0 +1,36 @@
+package com.sunyw.xyz.api;
+
+import java.io.IOException;
+
+/**
+ * 名称: OpenAI请求被拒绝
+ * 功能: 请求在发送前因限流或剩余时间不足被拒绝时抛出,调用方据此回复繁忙或取消,而不是回复网络异常
+ * 方法: getReason-拒绝原因
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 抛出时请求尚未发送到OpenAI
+ * 时间: 2023/03/23 10:30
+ */
+public class OpenAiRejectedException extends IOException {
+
+    /**
+     * 在等待时间内未获取到限流额度
+     */
+    public static final String THROTTLED = "throttled";
+
+    /**
+     * 剩余时间不足以完成一次调用
+     */
+    public static final String EXPIRED = "expired";
+
+    private final String reason;
+
+    public OpenAiRejectedException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,55 @@
+package com.sunyw.xyz.config;
+
+import com.sunyw.xyz.util.GcPauseMonitor;
+import com.sunyw.xyz.util.LocalCacheUtils;
+import com.sunyw.xyz.util.OffHeapValueStore;
+import com.sunyw.xyz.util.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * 本地缓存配置类
+ */
+@Configuration
+@Slf4j
+public class CacheConfig {
+
+    /**
+     * 注册堆内存和GC指标,用于对比开启堆外存储前后的堆占用和GC停顿,停顿耗时见gcPause阶段
+     */
+    @PostConstruct
+    public void registerJvmMetrics() {
+        StageMetrics metrics = StageMetrics.of("jvm");
+        metrics.gauge("heapUsedBytes", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        metrics.gauge("gcCount", () -> ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum());
+        //累计回收时间,包含并发收集器的时间,不等于停顿时间
+        metrics.gauge("gcCollectionTimeMs", () -> ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum());
+        metrics.gauge("localCacheSize", LocalCacheUtils::size);
+        GcPauseMonitor.install();
+    }
+
+    /**
+     * 堆外值存储,开启后LocalCacheUtils中较大的字符串值保存到堆外
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "cache.offheap", name = "enabled", havingValue = "true")
+    public OffHeapValueStore offHeapValueStore(@Value("${cache.offheap.maxBytes:268435456}") Long maxBytes,
+                                               @Value("${cache.offheap.pageSize:1048576}") Integer pageSize,
+                                               @Value("${cache.offheap.mappedDir:}") String mappedDir,
+                                               @Value("${cache.offheap.minLength:512}") Integer minLength) {
+        OffHeapValueStore store = new OffHeapValueStore(maxBytes, pageSize, mappedDir);
+        LocalCacheUtils.enableOffHeap(store, minLength);
+        log.info("本地缓存开启堆外存储,字符串长度不小于[{}]的值保存到堆外", minLength);
+        return store;
+    }
+}
@@ -0,0 +1,77 @@
+package com.sunyw.xyz.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 名称: 飞书应用配置
+ * 功能: 多个飞书机器人的配置列表
+ * 方法: <方法简述-方法描述>
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 对应application.yml中的feishu.apps
+ * 时间: 2023/03/08 14:20
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "feishu")
+public class FeishuAppProperties {
+
+    /**
+     * 飞书应用列表,每个部门一个机器人
+     */
+    private List<App> apps = new ArrayList<>();
+
+    @Data
+    public static class App {
+
+        /**
+         * 应用名称,用于线程名和指标
+         */
+        private String name;
+
+        /**
+         * 飞书的appId
+         */
+        private String appId;
+
+        /**
+         * 飞书的密钥
+         */
+        private String appSecret;
+
+        /**
+         * 同时处理的问题数量
+         */
+        private Integer concurrency = 10;
+
+        /**
+         * 等待处理的问题数量上限,超出后直接回复繁忙
+         */
+        private Integer queueCapacity = 200;
+
+        /**
+         * 回复线程数
+         */
+        private Integer replyConcurrency = 2;
+
+        /**
+         * 等待发送的回复数量上限
+         */
+        private Integer replyQueueCapacity = 1000;
+
+        /**
+         * 每秒回复次数,为空时使用feishu.reply.qps
+         */
+        private Double replyQps;
+
+        /**
+         * 配置了OpenAI账号额度时最多使用的额度比例,为空时使用openai.appShare
+         */
+        private Double upstreamShare;
+    }
+}
@@ -0,0 +1,147 @@
+package com.sunyw.xyz.config;
+
+import com.sunyw.xyz.config.FeishuAppProperties.App;
+import com.sunyw.xyz.util.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
+
+/**
+ * 名称: 飞书应用注册中心
+ * 功能: 根据事件中的app_id找到对应应用,每个应用的问题处理和消息回复都使用独立的线程池隔离
+ * 方法: resolve-查找应用, execute-提交到应用自己的线程池, executeReply-提交到应用自己的回复线程池
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: feishu.gpt下配置的单个应用作为默认应用注册,兼容旧配置
+ * 时间: 2023/03/08 14:35
+ */
+@Component
+@Slf4j
+public class FeishuAppRegistry {
+
+    private static final String DEFAULT_APP_NAME = "gpt";
+
+    @Value("${feishu.gpt.appid:}")
+    private String gptAppId;
+
+    @Value("${feishu.gpt.appSecret:}")
+    private String gptAppSecret;
+
+    @Autowired
+    private FeishuAppProperties feishuAppProperties;
+
+    private final Map<String, App> apps = new LinkedHashMap<>();
+
+    private final Map<String, ThreadPoolTaskExecutor> bulkheads = new LinkedHashMap<>();
+
+    private final Map<String, ThreadPoolTaskExecutor> replyBulkheads = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (App app : feishuAppProperties.getApps()) {
+            register(app);
+        }
+        if (StringUtils.isNotBlank(gptAppId) && !apps.containsKey(gptAppId)) {
+            App app = new App();
+            app.setName(DEFAULT_APP_NAME);
+            app.setAppId(gptAppId);
+            app.setAppSecret(gptAppSecret);
+            register(app);
+        }
+        if (apps.isEmpty()) {
+            log.warn("未配置任何飞书应用,将无法处理飞书消息");
+        }
+    }
+
+    private void register(App app) {
+        if (StringUtils.isBlank(app.getAppId())) {
+            log.warn("飞书应用[{}]未配置appId,已忽略", app.getName());
+            return;
+        }
+        if (StringUtils.isBlank(app.getName())) {
+            app.setName(app.getAppId());
+        }
+        apps.put(app.getAppId(), app);
+        bulkheads.put(app.getAppId(), buildExecutor("app-" + app.getName() + "----", app.getConcurrency(), app.getQueueCapacity()));
+        replyBulkheads.put(app.getAppId(), buildExecutor("reply-" + app.getName() + "----", app.getReplyConcurrency(), app.getReplyQueueCapacity()));
+        log.info("注册飞书应用:[{}],并发数:[{}],队列容量:[{}],回复线程数:[{}],回复队列容量:[{}]", app.getName(),
+                app.getConcurrency(), app.getQueueCapacity(), app.getReplyConcurrency(), app.getReplyQueueCapacity());
+    }
+
+    private ThreadPoolTaskExecutor buildExecutor(String threadNamePrefix, Integer poolSize, Integer queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setKeepAliveSeconds(3000);
+        executor.setAllowCoreThreadTimeOut(true);
+        //队列满时拒绝,由调用方决定丢弃还是自己执行,不占用其他应用的资源
+        executor.setRejectedExecutionHandler(new AbortPolicy());
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * 根据appId查找应用,appId为空且只有一个应用时返回该应用
+     *
+     * @param appId 事件中的app_id
+     * @return 未注册时返回null
+     */
+    public App resolve(String appId) {
+        if (StringUtils.isBlank(appId)) {
+            return apps.size() == 1 ? apps.values().iterator().next() : null;
+        }
+        return apps.get(appId);
+    }
+
+    /**
+     * 提交到应用自己的线程池执行
+     *
+     * @param app  应用
+     * @param task 任务
+     * @throws TaskRejectedException 应用的队列已满
+     */
+    public void execute(App app, Runnable task) throws TaskRejectedException {
+        StageMetrics metrics = StageMetrics.of("app-" + app.getName());
+        try {
+            bulkheads.get(app.getAppId()).execute(task);
+            metrics.incr("accepted");
+        } catch (TaskRejectedException e) {
+            metrics.incr("rejected");
+            throw e;
+        }
+    }
+
+    /**
+     * 提交到应用自己的回复线程池执行
+     *
+     * @param app  应用
+     * @param task 回复任务
+     * @throws TaskRejectedException 应用的回复队列已满
+     */
+    public void executeReply(App app, Runnable task) throws TaskRejectedException {
+        try {
+            replyBulkheads.get(app.getAppId()).execute(task);
+        } catch (TaskRejectedException e) {
+            StageMetrics.of("app-" + app.getName()).incr("replyRejected");
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        bulkheads.values().forEach(ThreadPoolTaskExecutor::shutdown);
+        replyBulkheads.values().forEach(ThreadPoolTaskExecutor::shutdown);
+    }
+}
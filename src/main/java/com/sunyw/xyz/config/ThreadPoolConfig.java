@@ -1,11 +1,12 @@
 package com.sunyw.xyz.config;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
 
 
 /**
@@ -15,43 +16,22 @@ import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 @Slf4j
 public class ThreadPoolConfig {
 
-    @Bean("threadPoolTaskExecutor")
-    public ThreadPoolTaskExecutor init() {
-        log.info("<===============================线程池初始化配置开始===============================>");
+    /**
+     * 批量问题专用线程池,线程优先级最低,OpenAI额度由OpenAiClient限制在批量额度比例内
+     */
+    @Bean("batchTaskExecutor")
+    public ThreadPoolTaskExecutor batchTaskExecutor(@Value("${openai.batch.poolSize:2}") Integer poolSize,
+                                                    @Value("${openai.batch.queueCapacity:1000}") Integer queueCapacity) {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        /*
-         * 核心线程数量
-         */
-        executor.setCorePoolSize(20);
-        /*
-         * 最大线程数量
-         */
-        executor.setMaxPoolSize(40);
-        /*
-         * 队列最大数量
-         */
-        executor.setQueueCapacity(Integer.MAX_VALUE);
-        /*
-         * 线程名称
-         */
-        executor.setThreadNamePrefix("taskThread----");
-        /*
-         * 线程空闲存活时间
-         */
-        executor.setKeepAliveSeconds(3000);
-        /*
-         * 设置线程超时回收
-         */
-        executor.setAllowCoreThreadTimeOut(true);
-        /*
-         * 拒绝策略
-         */
-        executor.setRejectedExecutionHandler(new CallerRunsPolicy());
-        /*
-         * 初始化
-         */
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("batchTask----");
+        executor.setThreadPriority(Thread.MIN_PRIORITY);
+        //队列满时拒绝,由批量处理返回错误行,不能在请求线程中调用OpenAI
+        executor.setRejectedExecutionHandler(new AbortPolicy());
         executor.initialize();
-        log.info("<===============================线程池初始化配置结束===============================>");
+        log.info("批量问题线程池初始化完成,线程数:[{}],队列容量:[{}]", poolSize, queueCapacity);
         return executor;
     }
 }
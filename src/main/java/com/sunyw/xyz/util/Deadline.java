@@ -0,0 +1,53 @@
+package com.sunyw.xyz.util;
+
+/**
+ * 名称: 处理截止时间
+ * 功能: 根据消息创建时间和时限计算剩余时间,作为各处理阶段的超时时间
+ * 方法: of-创建截止时间, remaining-剩余毫秒数, isExpired-是否已过期, timeout-本阶段可用的超时时间
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 创建时间晚于本机时间时按本机时间计算,避免时钟偏差导致截止时间延后
+ * 时间: 2023/03/14 09:40
+ */
+public final class Deadline {
+
+    /**
+     * 单个阶段的最小超时时间：毫秒
+     */
+    private static final int MIN_TIMEOUT = 1000;
+
+    private final long expireAt;
+
+    private Deadline(long expireAt) {
+        this.expireAt = expireAt;
+    }
+
+    /**
+     * 创建截止时间
+     *
+     * @param createTime 消息创建时间(毫秒)
+     * @param slo        时限(毫秒)
+     * @return
+     */
+    public static Deadline of(long createTime, long slo) {
+        return new Deadline(Math.min(createTime, System.currentTimeMillis()) + slo);
+    }
+
+    public long remaining() {
+        return expireAt - System.currentTimeMillis();
+    }
+
+    public boolean isExpired() {
+        return remaining() <= 0;
+    }
+
+    /**
+     * 本阶段可用的超时时间,不超过阶段本身配置的超时时间
+     *
+     * @param max 阶段配置的超时时间(毫秒)
+     * @return
+     */
+    public int timeout(int max) {
+        return (int) Math.max(MIN_TIMEOUT, Math.min(max, remaining()));
+    }
+}
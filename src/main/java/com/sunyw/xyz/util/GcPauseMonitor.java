@@ -0,0 +1,63 @@
+package com.sunyw.xyz.util;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 名称: GC停顿监控
+ * 功能: 通过GC通知记录每次停顿的耗时,写入gcPause阶段指标
+ * 方法: install-注册GC通知监听
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: GarbageCollectorMXBean.getCollectionTime是累计回收时间,并发收集器的时间不是停顿时间;
+ * 这里只统计停顿型回收,名称包含Concurrent或Cycles的收集器(G1/ZGC/Shenandoah的并发周期)不计入
+ * 时间: 2023/03/22 10:40
+ */
+@Slf4j
+public final class GcPauseMonitor {
+
+    private static final StageMetrics METRICS = StageMetrics.of("gcPause");
+
+    private static volatile boolean installed;
+
+    private GcPauseMonitor() {
+    }
+
+    /**
+     * 注册GC通知监听,重复调用时忽略
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(bean instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) bean).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (isConcurrent(info.getGcName())) {
+                    METRICS.incr("concurrentCycles");
+                    return;
+                }
+                long duration = info.getGcInfo().getDuration();
+                METRICS.add("totalMs", duration);
+                METRICS.recordLatency(duration);
+            }, null, null);
+        }
+        installed = true;
+        log.info("GC停顿监控已开启");
+    }
+
+    private static boolean isConcurrent(String gcName) {
+        return gcName.contains("Concurrent") || gcName.contains("Cycles");
+    }
+}
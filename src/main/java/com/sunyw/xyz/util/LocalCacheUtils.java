@@ -9,7 +9,6 @@ import org.apache.commons.lang3.ObjectUtils;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,7 +48,17 @@ public class LocalCacheUtils<T> {
      */
     private static LoadingCache<String,Object> GLOBAL_CACHE;
 
-    private final static Map<String,LoadingCache<String,Object>> ALL_GLOBAL_CACHE=Maps.newHashMap();
+    private final static Map<String,LoadingCache<String,Object>> ALL_GLOBAL_CACHE=Maps.newConcurrentMap();
+
+    /**
+     * 堆外值存储,为空时所有值保存在堆内
+     */
+    private static volatile OffHeapValueStore OFF_HEAP_STORE;
+
+    /**
+     * 不小于该长度的字符串值保存到堆外
+     */
+    private static int OFF_HEAP_MIN_LENGTH;
 
     static {
         GLOBAL_CACHE=buildLoadingCache(GUAVA_CACHE_SIZE,GUAVA_CACHE_TIME);
@@ -92,12 +101,59 @@ public class LocalCacheUtils<T> {
          */
         return CacheBuilder.newBuilder().initialCapacity(INITIAL_CAPACITY).maximumSize(maximumSize).expireAfterAccess(expireAfterAccess,TimeUnit.MILLISECONDS)
                 .removalListener(removalNotification -> {
+                    //通过句柄所属的存储释放,关闭堆外存储后被回收的句柄也能正确释放
+                    if (removalNotification.getValue() instanceof OffHeapValueStore.Handle) {
+                        ((OffHeapValueStore.Handle) removalNotification.getValue()).free();
+                    }
                     if (log.isDebugEnabled()) {
                         log.debug("Guava Cache缓存回收成功，键：{}, 值：{}",removalNotification.getKey(),removalNotification.getValue());
                     }
                 }).recordStats().concurrencyLevel(CONCURRENCY_LEVEL).build(cacheLoader);
     }
 
+    /**
+     * 开启堆外存储,之后写入的较大字符串值保存到堆外,缓存中只保留句柄;
+     * store为null时关闭堆外存储,已保存的值仍通过句柄所属的存储读取和释放
+     *
+     * @param store     堆外值存储
+     * @param minLength 保存到堆外的最小字符串长度
+     */
+    public static void enableOffHeap(OffHeapValueStore store,int minLength) {
+        OFF_HEAP_MIN_LENGTH=minLength;
+        OFF_HEAP_STORE=store;
+    }
+
+    /**
+     * 转换为缓存中保存的值,堆外存储已满时保存在堆内
+     */
+    private static Object toStored(Object value) {
+        OffHeapValueStore store=OFF_HEAP_STORE;
+        if (store == null || !(value instanceof String) || ((String) value).length() < OFF_HEAP_MIN_LENGTH) {
+            return value;
+        }
+        long handle=store.put((String) value);
+        return handle < 0 ? value : new OffHeapValueStore.Handle(store,handle);
+    }
+
+    private static Map<String,Object> toStored(Map<? extends String,? extends Object> map) {
+        if (OFF_HEAP_STORE == null) {
+            return (Map<String,Object>) map;
+        }
+        Map<String,Object> storedMap=Maps.newHashMapWithExpectedSize(map.size());
+        map.forEach((k,v) -> storedMap.put(k,toStored(v)));
+        return storedMap;
+    }
+
+    /**
+     * 从缓存中保存的值还原
+     */
+    private static Object fromStored(Object obj) {
+        if (obj instanceof OffHeapValueStore.Handle) {
+            return ((OffHeapValueStore.Handle) obj).get();
+        }
+        return obj;
+    }
+
     /**
      * 设置缓存值
      *
@@ -106,7 +162,7 @@ public class LocalCacheUtils<T> {
      */
     public static void put(String key,Object value) {
         try{
-            GLOBAL_CACHE.put(key,value);
+            GLOBAL_CACHE.put(key,toStored(value));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(),getAverageLoadPenalty());
             }
@@ -116,12 +172,7 @@ public class LocalCacheUtils<T> {
     }
 
     private static LoadingCache<String,Object> getLoadCache(String key,Long expireTime) {
-        LoadingCache<String,Object> cacheLoadCache=ALL_GLOBAL_CACHE.get(key);
-        if (cacheLoadCache == null) {
-            cacheLoadCache=buildLoadingCache(GUAVA_CACHE_SIZE,expireTime);
-            ALL_GLOBAL_CACHE.put(key,cacheLoadCache);
-        }
-        return cacheLoadCache;
+        return ALL_GLOBAL_CACHE.computeIfAbsent(key,k -> buildLoadingCache(GUAVA_CACHE_SIZE,expireTime));
     }
 
 
@@ -135,7 +186,7 @@ public class LocalCacheUtils<T> {
      */
     public static void put(String key,String hashKey,Object value,Long expireTime) {
         try{
-            getLoadCache(key,expireTime).put(hashKey,value);
+            getLoadCache(key,expireTime).put(hashKey,toStored(value));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
             }
@@ -151,7 +202,7 @@ public class LocalCacheUtils<T> {
      */
     public static void putAll(Map<? extends String,? extends Object> map) {
         try{
-            GLOBAL_CACHE.putAll(map);
+            GLOBAL_CACHE.putAll(toStored(map));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(),getAverageLoadPenalty());
             }
@@ -167,7 +218,7 @@ public class LocalCacheUtils<T> {
      */
     public static void putAll(String key,Map<? extends String,? extends Object> map,Long expireTime) {
         try{
-            getLoadCache(key,expireTime).putAll(map);
+            getLoadCache(key,expireTime).putAll(toStored(map));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
             }
@@ -186,7 +237,7 @@ public class LocalCacheUtils<T> {
     public static Object getIfNotPresentLoad(String key) {
         Object obj=null;
         try{
-            obj=GLOBAL_CACHE.get(key);
+            obj=fromStored(GLOBAL_CACHE.get(key));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(),getAverageLoadPenalty());
             }
@@ -207,7 +258,7 @@ public class LocalCacheUtils<T> {
             if (ALL_GLOBAL_CACHE.get(key) == null) {
                 return obj;
             }
-            obj=ALL_GLOBAL_CACHE.get(key).get(hashKey);
+            obj=fromStored(ALL_GLOBAL_CACHE.get(key).get(hashKey));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
             }
@@ -232,7 +283,7 @@ public class LocalCacheUtils<T> {
     public static Object get(String key) {
         Object obj=null;
         try{
-            obj=GLOBAL_CACHE.getIfPresent(key);
+            obj=fromStored(GLOBAL_CACHE.getIfPresent(key));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(),getAverageLoadPenalty());
             }
@@ -250,10 +301,11 @@ public class LocalCacheUtils<T> {
     public static Object get(String key,String hashKey) {
         Object obj=null;
         try{
-            if (ALL_GLOBAL_CACHE.get(key) == null) {
+            LoadingCache<String,Object> cache=ALL_GLOBAL_CACHE.get(key);
+            if (cache == null) {
                 return null;
             }
-            obj=ALL_GLOBAL_CACHE.get(key).getIfPresent(hashKey);
+            obj=fromStored(cache.getIfPresent(hashKey));
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
             }
@@ -287,12 +339,13 @@ public class LocalCacheUtils<T> {
 
     public static void remove(String key,String hashKey) {
         try{
-            if (ALL_GLOBAL_CACHE.get(key) == null) {
+            LoadingCache<String,Object> cache=ALL_GLOBAL_CACHE.get(key);
+            if (cache == null) {
                 return;
             }
-            ALL_GLOBAL_CACHE.get(key).invalidate(hashKey);
-            if (ALL_GLOBAL_CACHE.get(key).size() == 0) {
-                ALL_GLOBAL_CACHE.remove(key);
+            cache.invalidate(hashKey);
+            if (cache.size() == 0) {
+                ALL_GLOBAL_CACHE.remove(key,cache);
             }
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
@@ -404,9 +457,9 @@ public class LocalCacheUtils<T> {
      * @return
      */
     public static Map<String,Object> valueToMap() {
-        ConcurrentMap<String,Object> valueMap=Maps.newConcurrentMap();
+        Map<String,Object> valueMap=Maps.newConcurrentMap();
         try{
-            valueMap=GLOBAL_CACHE.asMap();
+            valueMap=Maps.transformValues(GLOBAL_CACHE.asMap(),LocalCacheUtils::fromStored);
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(),getAverageLoadPenalty());
             }
@@ -422,12 +475,12 @@ public class LocalCacheUtils<T> {
      * @return
      */
     public static Map<String,Object> valueToMap(String key) {
-        ConcurrentMap<String,Object> valueMap=Maps.newConcurrentMap();
+        Map<String,Object> valueMap=Maps.newConcurrentMap();
         try{
             if (ALL_GLOBAL_CACHE.get(key) == null) {
                 return valueMap;
             }
-            valueMap=ALL_GLOBAL_CACHE.get(key).asMap();
+            valueMap=Maps.transformValues(ALL_GLOBAL_CACHE.get(key).asMap(),LocalCacheUtils::fromStored);
             if (log.isDebugEnabled()) {
                 log.debug("缓存命中率：{}，新值平均加载时间：{}",getHitRate(key),getAverageLoadPenalty(key));
             }
@@ -0,0 +1,413 @@
+package com.sunyw.xyz.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 名称: 堆外值存储
+ * 功能: 将较大的字符串以UTF-8字节保存在堆外内存中,堆内只保留句柄
+ * 方法: put-保存值并返回句柄, get-按句柄读取值, free-释放句柄
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 内存按固定大小的页申请,每页切分为同一规格的块(slab),空页可以分配给任意规格;
+ * 申请不到页时先整理同规格中较空的页腾出空页,仍不足时返回-1由调用方保存在堆内。
+ * 句柄高32位为版本号,句柄释放后重新分配时版本号递增,过期句柄读取返回null
+ * 时间: 2023/03/21 15:20
+ */
+@Slf4j
+public class OffHeapValueStore {
+
+    /**
+     * 最小块大小：字节
+     */
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    /**
+     * 相邻规格块大小的增长系数
+     */
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private static final StageMetrics METRICS = StageMetrics.of("offHeap");
+
+    private final long maxBytes;
+
+    private final int pageSize;
+
+    private final File mappedDir;
+
+    private final int[] chunkSizes;
+
+    private final List<Page> pages = new ArrayList<>();
+
+    private final List<List<Page>> classPages = new ArrayList<>();
+
+    private final Deque<Page> freePages = new ArrayDeque<>();
+
+    private int[] handlePage = new int[1024];
+
+    private int[] handleChunk = new int[1024];
+
+    private int[] handleLength = new int[1024];
+
+    private int[] handleVersion = new int[1024];
+
+    private int handleCount;
+
+    private int[] freeHandles = new int[1024];
+
+    private int freeHandleCount;
+
+    private long usedBytes;
+
+    private long liveValues;
+
+    /**
+     * @param maxBytes  堆外内存上限：字节
+     * @param pageSize  页大小：字节,也是单个值的大小上限
+     * @param mappedDir 内存映射文件目录,为空时使用直接内存
+     */
+    public OffHeapValueStore(long maxBytes, int pageSize, String mappedDir) {
+        this.maxBytes = maxBytes;
+        this.pageSize = pageSize;
+        this.mappedDir = mappedDir == null || mappedDir.isEmpty() ? null : new File(mappedDir);
+        if (this.mappedDir != null && !this.mappedDir.isDirectory() && !this.mappedDir.mkdirs()) {
+            throw new IllegalArgumentException("堆外存储目录不可用:" + mappedDir);
+        }
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_CHUNK_SIZE; size < pageSize; size = ((int) (size * GROWTH_FACTOR) + 63) & ~63) {
+            sizes.add(size);
+        }
+        sizes.add(pageSize);
+        chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        for (int i = 0; i < chunkSizes.length; i++) {
+            classPages.add(new ArrayList<>());
+        }
+        METRICS.gauge("maxBytes", () -> maxBytes);
+        METRICS.gauge("allocatedBytes", this::allocatedBytes);
+        METRICS.gauge("usedBytes", this::usedBytes);
+        METRICS.gauge("liveValues", this::liveValues);
+        log.info("堆外存储初始化完成,上限:[{}]字节,页大小:[{}]字节,规格数:[{}],模式:[{}]",
+                maxBytes, pageSize, chunkSizes.length, this.mappedDir == null ? "direct" : "mapped");
+    }
+
+    /**
+     * 保存值
+     *
+     * @param value 值
+     * @return 句柄,值过大或内存已满时返回-1
+     */
+    public long put(String value) {
+        //编码在锁外进行,锁内只做分配和拷贝
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int slabClass = slabClass(bytes.length);
+        if (slabClass < 0) {
+            METRICS.incr("tooLarge");
+            return -1;
+        }
+        synchronized (this) {
+            return put(bytes, slabClass);
+        }
+    }
+
+    private long put(byte[] bytes, int slabClass) {
+        Page page = pageWithFreeChunk(slabClass);
+        if (page == null && compact()) {
+            page = pageWithFreeChunk(slabClass);
+        }
+        if (page == null) {
+            METRICS.incr("full");
+            return -1;
+        }
+        int chunk = page.used.nextClearBit(0);
+        page.used.set(chunk);
+        page.usedCount++;
+        int index = newHandle();
+        page.owners[chunk] = index;
+        ByteBuffer buffer = page.buffer.duplicate();
+        buffer.position(chunk * page.chunkSize);
+        buffer.put(bytes);
+        handlePage[index] = page.id;
+        handleChunk[index] = chunk;
+        handleLength[index] = bytes.length;
+        usedBytes += bytes.length;
+        liveValues++;
+        METRICS.incr("put");
+        return ((long) handleVersion[index] << 32) | index;
+    }
+
+    /**
+     * 读取值
+     *
+     * @param handle 句柄
+     * @return 句柄已释放时返回null
+     */
+    public String get(long handle) {
+        byte[] bytes;
+        //锁内只拷贝字节,解码在锁外进行,避免读取大值时长时间占用锁
+        synchronized (this) {
+            int index = index(handle);
+            if (index < 0) {
+                return null;
+            }
+            Page page = pages.get(handlePage[index]);
+            bytes = new byte[handleLength[index]];
+            ByteBuffer buffer = page.buffer.duplicate();
+            buffer.position(handleChunk[index] * page.chunkSize);
+            buffer.get(bytes);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 释放句柄,重复释放或释放过期句柄时忽略
+     *
+     * @param handle 句柄
+     */
+    public synchronized void free(long handle) {
+        int index = index(handle);
+        if (index < 0) {
+            return;
+        }
+        Page page = pages.get(handlePage[index]);
+        page.used.clear(handleChunk[index]);
+        page.usedCount--;
+        if (page.usedCount == 0) {
+            releasePage(page);
+        }
+        usedBytes -= handleLength[index];
+        liveValues--;
+        handlePage[index] = -1;
+        handleVersion[index]++;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        }
+        freeHandles[freeHandleCount++] = index;
+    }
+
+    public synchronized long allocatedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long liveValues() {
+        return liveValues;
+    }
+
+    /**
+     * 整理各规格中较空的页,把块移动到较满的页中,腾出的空页归还页池
+     *
+     * @return 是否腾出了空页
+     */
+    private boolean compact() {
+        int released = 0;
+        for (List<Page> list : classPages) {
+            if (list.size() < 2) {
+                continue;
+            }
+            int chunkCount = list.get(0).chunkCount;
+            int freeChunks = 0;
+            for (Page page : list) {
+                freeChunks += chunkCount - page.usedCount;
+            }
+            if (freeChunks < chunkCount) {
+                continue;
+            }
+            list.sort(Comparator.comparingInt((Page page) -> page.usedCount).reversed());
+            int head = 0;
+            int tail = list.size() - 1;
+            while (head < tail) {
+                Page dest = list.get(head);
+                Page src = list.get(tail);
+                if (dest.usedCount == chunkCount) {
+                    head++;
+                } else if (src.usedCount == 0) {
+                    tail--;
+                } else {
+                    moveChunk(src, src.used.nextSetBit(0), dest, dest.used.nextClearBit(0));
+                }
+            }
+            for (Page page : new ArrayList<>(list)) {
+                if (page.usedCount == 0) {
+                    releasePage(page);
+                    released++;
+                }
+            }
+        }
+        METRICS.incr("compaction");
+        METRICS.add("compactionReleasedPages", released);
+        return released > 0;
+    }
+
+    private void moveChunk(Page src, int srcChunk, Page dest, int destChunk) {
+        int index = src.owners[srcChunk];
+        int length = handleLength[index];
+        ByteBuffer from = src.buffer.duplicate();
+        from.position(srcChunk * src.chunkSize);
+        from.limit(srcChunk * src.chunkSize + length);
+        ByteBuffer to = dest.buffer.duplicate();
+        to.position(destChunk * dest.chunkSize);
+        to.put(from);
+        src.used.clear(srcChunk);
+        src.usedCount--;
+        dest.used.set(destChunk);
+        dest.usedCount++;
+        dest.owners[destChunk] = index;
+        handlePage[index] = dest.id;
+        handleChunk[index] = destChunk;
+        METRICS.incr("compactionMovedChunks");
+    }
+
+    private Page pageWithFreeChunk(int slabClass) {
+        for (Page page : classPages.get(slabClass)) {
+            if (page.usedCount < page.chunkCount) {
+                return page;
+            }
+        }
+        Page page = freePages.poll();
+        if (page == null) {
+            if (allocatedBytes() + pageSize > maxBytes) {
+                return null;
+            }
+            page = new Page(pages.size(), allocate());
+            pages.add(page);
+        }
+        page.assign(slabClass, chunkSizes[slabClass], pageSize);
+        classPages.get(slabClass).add(page);
+        return page;
+    }
+
+    private void releasePage(Page page) {
+        classPages.get(page.slabClass).remove(page);
+        page.slabClass = -1;
+        freePages.push(page);
+    }
+
+    private ByteBuffer allocate() {
+        if (mappedDir == null) {
+            return ByteBuffer.allocateDirect(pageSize);
+        }
+        try {
+            File file = File.createTempFile("offheap-", ".page", mappedDir);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
+            } finally {
+                //映射建立后文件可以删除,内存映射在进程退出前一直有效
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("创建内存映射页失败", e);
+        }
+    }
+
+    private int slabClass(int length) {
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (chunkSizes[i] >= length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int newHandle() {
+        if (freeHandleCount > 0) {
+            return freeHandles[--freeHandleCount];
+        }
+        if (handleCount == handlePage.length) {
+            int capacity = handlePage.length * 2;
+            handlePage = Arrays.copyOf(handlePage, capacity);
+            handleChunk = Arrays.copyOf(handleChunk, capacity);
+            handleLength = Arrays.copyOf(handleLength, capacity);
+            handleVersion = Arrays.copyOf(handleVersion, capacity);
+        }
+        return handleCount++;
+    }
+
+    private int index(long handle) {
+        int index = (int) handle;
+        if (index < 0 || index >= handleCount || handlePage[index] < 0 || handleVersion[index] != (int) (handle >>> 32)) {
+            return -1;
+        }
+        return index;
+    }
+
+    private static class Page {
+
+        private final int id;
+
+        private final ByteBuffer buffer;
+
+        private int slabClass = -1;
+
+        private int chunkSize;
+
+        private int chunkCount;
+
+        private int usedCount;
+
+        private BitSet used;
+
+        /**
+         * 每个块对应的句柄下标,整理时用于更新句柄位置
+         */
+        private int[] owners;
+
+        private Page(int id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        private void assign(int slabClass, int chunkSize, int pageSize) {
+            this.slabClass = slabClass;
+            this.chunkSize = chunkSize;
+            this.chunkCount = pageSize / chunkSize;
+            this.usedCount = 0;
+            this.used = new BitSet(chunkCount);
+            this.owners = new int[chunkCount];
+        }
+    }
+
+    /**
+     * 缓存中保存的堆外值句柄,记录所属的存储,关闭或更换堆外存储后已有的句柄仍能读取和释放
+     */
+    public static final class Handle {
+
+        private final OffHeapValueStore store;
+
+        private final long value;
+
+        public Handle(OffHeapValueStore store, long value) {
+            this.store = store;
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public String get() {
+            return store.get(value);
+        }
+
+        public void free() {
+            store.free(value);
+        }
+    }
+}
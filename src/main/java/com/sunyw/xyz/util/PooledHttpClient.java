@@ -0,0 +1,84 @@
+package com.sunyw.xyz.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 名称: 长连接HTTP客户端
+ * 功能: 复用JDK的keep-alive连接池发送JSON请求
+ * 方法: postJson-发送JSON POST请求
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: hutool的HttpResponse在读取完毕后会断开连接,无法复用;这里读取完响应后只关闭流,连接归还JDK的KeepAliveCache
+ * 时间: 2023/03/06 10:30
+ */
+public final class PooledHttpClient {
+
+    /**
+     * 每个目标主机保留的空闲连接数,须在首次使用HttpURLConnection之前设置
+     */
+    private static final String MAX_CONNECTIONS = "50";
+
+    /**
+     * 建立连接超时时间上限：毫秒
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    static {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", MAX_CONNECTIONS);
+        }
+    }
+
+    private PooledHttpClient() {
+    }
+
+    /**
+     * 发送JSON POST请求
+     *
+     * @param url     请求地址
+     * @param headers 额外请求头,可为空
+     * @param body    请求体
+     * @param timeOut 读取超时时间(毫秒)
+     * @return
+     * @throws IOException
+     */
+    public static HttpResult postJson(String url, Map<String, String> headers, String body, int timeOut) throws IOException {
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setConnectTimeout(Math.min(timeOut, CONNECT_TIMEOUT));
+        factory.setReadTimeout(timeOut);
+        ClientHttpRequest request = factory.createRequest(URI.create(url), HttpMethod.POST);
+        request.getHeaders().setContentType(new MediaType(MediaType.APPLICATION_JSON, StandardCharsets.UTF_8));
+        if (headers != null) {
+            headers.forEach(request.getHeaders()::set);
+        }
+        StreamUtils.copy(body, StandardCharsets.UTF_8, request.getBody());
+        try (ClientHttpResponse response = request.execute()) {
+            String respBody = StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8);
+            return new HttpResult(response.getRawStatusCode(), response.getHeaders(), respBody);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class HttpResult {
+
+        private final int status;
+
+        private final HttpHeaders headers;
+
+        private final String body;
+    }
+}
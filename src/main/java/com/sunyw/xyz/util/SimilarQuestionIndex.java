@@ -0,0 +1,336 @@
+package com.sunyw.xyz.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 名称: 相似问题索引
+ * 功能: 基于MinHash+LSH的近似重复问题查找,复用已回答问题的答案
+ * 方法: lookup-查找相似问题的回答, put-记录问题和回答
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 问题按字符n-gram切分,签名分成bands段,任意一段完全相同即为候选,再按签名估算的相似度过滤;
+ * bands越多召回越高,rows越多精度越高。回答保存在LocalCacheUtils中,索引只保存签名;
+ * 每条记录保存生成回答时的max_tokens,只复用给max_tokens不高于它的调用方,避免较短的批量回答被用于飞书提问
+ * 时间: 2023/03/10 16:05
+ */
+@Component
+@Slf4j
+public class SimilarQuestionIndex {
+
+    /**
+     * 回答在LocalCacheUtils中的模块KEY
+     */
+    private static final String ANSWER_CACHE_KEY = "similar_question_answer";
+
+    private static final StageMetrics METRICS = StageMetrics.of("similarQuestion");
+
+    @Value("${openai.reuse.enabled:false}")
+    private Boolean enabled;
+
+    /**
+     * 相似度阈值,签名估算的Jaccard相似度不低于该值才复用
+     */
+    @Value("${openai.reuse.threshold:0.7}")
+    private Double threshold;
+
+    /**
+     * 字符n-gram长度
+     */
+    @Value("${openai.reuse.shingle:2}")
+    private Integer shingle;
+
+    @Value("${openai.reuse.bands:16}")
+    private Integer bands;
+
+    @Value("${openai.reuse.rows:4}")
+    private Integer rows;
+
+    /**
+     * 索引最多保存的问题数量,超出后淘汰最久未使用的问题
+     */
+    @Value("${openai.reuse.maxEntries:10000}")
+    private Integer maxEntries;
+
+    /**
+     * 回答有效时间：毫秒
+     */
+    @Value("${openai.reuse.expireTime:3600000}")
+    private Long expireTime;
+
+    /**
+     * 命中时按该比例抽样,记录问题和匹配问题供人工检查是否误复用,并统计签名估算误差
+     */
+    @Value("${openai.reuse.sampleRate:0.05}")
+    private Double sampleRate;
+
+    private long[] seeds;
+
+    private long nextId;
+
+    private LinkedHashMap<Long, Entry> entries;
+
+    private List<Map<Long, List<Long>>> buckets;
+
+    @PostConstruct
+    public void init() {
+        SplittableRandom random = new SplittableRandom(0x5DEECE66DL);
+        seeds = new long[bands * rows];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+        }
+        buckets = new ArrayList<>(bands);
+        for (int i = 0; i < bands; i++) {
+            buckets.add(new HashMap<>());
+        }
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > maxEntries) {
+                    unlink(eldest.getValue());
+                    LocalCacheUtils.remove(ANSWER_CACHE_KEY, String.valueOf(eldest.getKey()));
+                    METRICS.incr("evicted");
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 查找相似问题的回答
+     *
+     * @param question  问题
+     * @param maxTokens 调用方的回答最大token数,只复用不低于该值生成的回答
+     * @return 没有相似问题时返回null
+     */
+    public String lookup(String question, int maxTokens) {
+        if (!enabled) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String normalized = normalize(question);
+        int[] signature = signature(shingles(normalized));
+        Entry best = null;
+        double bestSimilarity = 0D;
+        synchronized (this) {
+            Set<Long> candidates = new HashSet<>();
+            for (int band = 0; band < bands; band++) {
+                List<Long> ids = buckets.get(band).get(bandKey(signature, band));
+                if (ids != null) {
+                    candidates.addAll(ids);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Long id : candidates) {
+                Entry entry = entries.get(id);
+                if (entry == null || entry.maxTokens < maxTokens) {
+                    continue;
+                }
+                if (now - entry.createTime > expireTime) {
+                    remove(entry);
+                    continue;
+                }
+                double similarity = similarity(signature, entry.signature);
+                if (similarity >= threshold && similarity > bestSimilarity) {
+                    best = entry;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        METRICS.incr("lookup");
+        METRICS.add("lookupMicrosTotal", (System.nanoTime() - start) / 1000);
+        if (best == null) {
+            METRICS.incr("miss");
+            return null;
+        }
+        String answer;
+        //与put、remove在同一把锁内读取回答,避免读到正在写入或删除的缓存
+        synchronized (this) {
+            answer = LocalCacheUtils.get(ANSWER_CACHE_KEY, String.valueOf(best.id), String.class);
+            if (answer == null) {
+                remove(best);
+            }
+        }
+        if (answer == null) {
+            METRICS.incr("miss");
+            return null;
+        }
+        METRICS.incr("hit");
+        log.info("复用相似问题的回答,相似度:[{}],原问题:[{}]", bestSimilarity, best.question);
+        if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            sample(normalized, best.question, bestSimilarity);
+        }
+        return answer;
+    }
+
+    /**
+     * 记录问题和回答
+     *
+     * @param question  问题
+     * @param answer    回答
+     * @param maxTokens 生成回答时的max_tokens
+     */
+    public void put(String question, String answer, int maxTokens) {
+        if (!enabled) {
+            return;
+        }
+        String normalized = normalize(question);
+        if (normalized.isEmpty()) {
+            return;
+        }
+        int[] signature = signature(shingles(normalized));
+        synchronized (this) {
+            Entry entry = new Entry(nextId++, normalized, signature, maxTokens, System.currentTimeMillis());
+            for (int band = 0; band < bands; band++) {
+                buckets.get(band).computeIfAbsent(bandKey(signature, band), k -> new ArrayList<>(1)).add(entry.id);
+            }
+            entries.put(entry.id, entry);
+            LocalCacheUtils.put(ANSWER_CACHE_KEY, String.valueOf(entry.id), answer, expireTime);
+        }
+    }
+
+    /**
+     * 抽样记录复用的问题对,供人工检查是否答非所问(如只有版本号不同的问题);
+     * 同时计算精确的Jaccard相似度,低于阈值说明签名估算有误差,这只能反映MinHash的估算误差,不能反映复用是否正确
+     */
+    private void sample(String question, String matched, double estimated) {
+        Set<String> a = shingles(question);
+        Set<String> b = shingles(matched);
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        a.retainAll(b);
+        double jaccard = union.isEmpty() ? 1D : (double) a.size() / union.size();
+        METRICS.incr("sampled");
+        if (jaccard < threshold) {
+            METRICS.incr("estimateError");
+        }
+        log.info("相似问题复用抽样,估算相似度:[{}],精确相似度:[{}],问题:[{}],匹配问题:[{}]", estimated, jaccard, question, matched);
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.id) != null) {
+            unlink(entry);
+            LocalCacheUtils.remove(ANSWER_CACHE_KEY, String.valueOf(entry.id));
+        }
+    }
+
+    private void unlink(Entry entry) {
+        for (int band = 0; band < bands; band++) {
+            long key = bandKey(entry.signature, band);
+            List<Long> ids = buckets.get(band).get(key);
+            if (ids == null) {
+                continue;
+            }
+            Iterator<Long> iterator = ids.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == entry.id) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            if (ids.isEmpty()) {
+                buckets.get(band).remove(key);
+            }
+        }
+    }
+
+    /**
+     * 统一大小写,标点和空白合并为一个空格
+     */
+    private String normalize(String question) {
+        return question == null ? "" : question.toLowerCase().replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+
+    private Set<String> shingles(String normalized) {
+        Set<String> shingles = new HashSet<>();
+        if (normalized.length() <= shingle) {
+            shingles.add(normalized);
+            return shingles;
+        }
+        for (int i = 0; i + shingle <= normalized.length(); i++) {
+            shingles.add(normalized.substring(i, i + shingle));
+        }
+        return shingles;
+    }
+
+    private int[] signature(Set<String> shingles) {
+        int[] signature = new int[seeds.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String s : shingles) {
+            long hash = s.hashCode();
+            for (int i = 0; i < seeds.length; i++) {
+                int h = (int) (mix(hash ^ seeds[i]) >>> 33);
+                if (h < signature[i]) {
+                    signature[i] = h;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            key = key * 31 + signature[i];
+        }
+        return mix(key);
+    }
+
+    private double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    /**
+     * MurmurHash3的64位混淆函数
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Entry {
+
+        private final long id;
+
+        private final String question;
+
+        private final int[] signature;
+
+        private final int maxTokens;
+
+        private final long createTime;
+
+        private Entry(long id, String question, int[] signature, int maxTokens, long createTime) {
+            this.id = id;
+            this.question = question;
+            this.signature = signature;
+            this.maxTokens = maxTokens;
+            this.createTime = createTime;
+        }
+    }
+}
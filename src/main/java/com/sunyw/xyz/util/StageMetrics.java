@@ -0,0 +1,100 @@
+package com.sunyw.xyz.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 名称: 处理阶段指标
+ * 功能: 按阶段统计计数与耗时
+ * 方法: of-获取阶段指标, incr-计数加一, recordLatency-记录耗时, gauge-注册实时取值的指标, snapshotAll-导出所有阶段指标
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 仅保存在内存中,重启后清零
+ * 时间: 2023/03/06 10:12
+ */
+public final class StageMetrics {
+
+    private static final ConcurrentMap<String, StageMetrics> ALL_STAGE_METRICS = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    private final LongAdder latencyCount = new LongAdder();
+
+    private final LongAdder latencyTotal = new LongAdder();
+
+    private final AtomicLong latencyMax = new AtomicLong();
+
+    private StageMetrics() {
+    }
+
+    /**
+     * 获取阶段指标,不存在时创建
+     *
+     * @param stage 阶段名称
+     * @return
+     */
+    public static StageMetrics of(String stage) {
+        return ALL_STAGE_METRICS.computeIfAbsent(stage, k -> new StageMetrics());
+    }
+
+    public void incr(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(value);
+    }
+
+    public long get(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0L : adder.sum();
+    }
+
+    /**
+     * 注册实时取值的指标,导出时调用supplier获取当前值
+     *
+     * @param name     指标名称
+     * @param supplier 取值方法
+     */
+    public void gauge(String name, Supplier<?> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param millis 耗时(毫秒)
+     */
+    public void recordLatency(long millis) {
+        latencyCount.increment();
+        latencyTotal.add(millis);
+        latencyMax.accumulateAndGet(millis, Math::max);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        new TreeMap<>(counters).forEach((k, v) -> snapshot.put(k, v.sum()));
+        new TreeMap<>(gauges).forEach((k, v) -> snapshot.put(k, v.get()));
+        long count = latencyCount.sum();
+        if (count > 0) {
+            snapshot.put("latencyCount", count);
+            snapshot.put("latencyAvgMs", latencyTotal.sum() / count);
+            snapshot.put("latencyMaxMs", latencyMax.get());
+        }
+        return snapshot;
+    }
+
+    public static Map<String, Map<String, Object>> snapshotAll() {
+        Map<String, Map<String, Object>> snapshot = new TreeMap<>();
+        ALL_STAGE_METRICS.forEach((k, v) -> snapshot.put(k, v.snapshot()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,88 @@
+package com.sunyw.xyz.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 名称: 堆外存储对比测试
+ * 功能: 缓存写满约2048 token的回答后,对比堆内和堆外两种存储方式的堆占用和GC停顿
+ * 方法: main-参数依次为模式(heap/offheap)、缓存数量、回答字符数、写满后的读写次数
+ * 版本: 1.0
+ * 作者: sunyw
+ * 说明: 不属于单元测试,需单独运行,每种模式使用独立的JVM,例如
+ * java -Xmx2g -XX:MaxDirectMemorySize=1g -cp ... com.sunyw.xyz.util.OffHeapCacheBenchmark offheap 100000 8192 200000;
+ * 停顿时间来自GcPauseMonitor,不包含并发周期,堆占用在统计停顿之后显式GC再读取
+ * 时间: 2023/03/22 14:05
+ */
+public class OffHeapCacheBenchmark {
+
+    private static final String MODULE = "similar_question_answer";
+
+    private static final long EXPIRE_TIME = 3600000L;
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "heap";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int answerChars = args.length > 2 ? Integer.parseInt(args[2]) : 8192;
+        int operations = args.length > 3 ? Integer.parseInt(args[3]) : 200000;
+        OffHeapValueStore store = null;
+        if ("offheap".equals(mode)) {
+            long maxBytes = ((long) count * answerChars * 5 / 4 >>> 20) + 64 << 20;
+            store = new OffHeapValueStore(maxBytes, 1 << 20, null);
+            LocalCacheUtils.enableOffHeap(store, 512);
+        }
+        GcPauseMonitor.install();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            LocalCacheUtils.put(MODULE, "q" + i, answer(i, answerChars), EXPIRE_TIME);
+        }
+        long fillMs = System.currentTimeMillis() - start;
+        Map<String, Object> fillPause = StageMetrics.of("gcPause").snapshot();
+
+        //写满后模拟线上读多写少的访问,每10次读替换一个回答
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long checksum = 0;
+        start = System.currentTimeMillis();
+        for (int i = 0; i < operations; i++) {
+            int key = random.nextInt(count);
+            if (i % 10 == 0) {
+                LocalCacheUtils.put(MODULE, "q" + key, answer(count + i, answerChars), EXPIRE_TIME);
+            } else {
+                Object value = LocalCacheUtils.get(MODULE, "q" + key);
+                checksum += value == null ? 0 : value.hashCode();
+            }
+        }
+        long steadyMs = System.currentTimeMillis() - start;
+        Map<String, Object> totalPause = StageMetrics.of("gcPause").snapshot();
+
+        System.gc();
+        System.gc();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        System.out.println("模式: " + mode + ", 缓存数量: " + LocalCacheUtils.size(MODULE) + ", 回答字符数: " + answerChars
+                + ", 收集器: " + collectors() + ", 校验值: " + checksum);
+        System.out.println("写满耗时: " + fillMs + "ms, 写满阶段GC停顿: " + fillPause);
+        System.out.println("读写耗时: " + steadyMs + "ms, 累计GC停顿: " + totalPause);
+        System.out.println("显式GC后堆占用: " + (heapUsed >> 20) + "MB"
+                + (store == null ? "" : ", 堆外申请: " + (store.allocatedBytes() >> 20) + "MB, 堆外使用: "
+                + (store.usedBytes() >> 20) + "MB, 堆外值数量: " + store.liveValues()));
+    }
+
+    private static String answer(int seed, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        builder.append(seed).append(':');
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (builder.length() < length) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static String collectors() {
+        StringBuilder builder = new StringBuilder();
+        ManagementFactory.getGarbageCollectorMXBeans().forEach(bean -> builder.append(bean.getName()).append('/'));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package com.sunyw.xyz.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 名称: 堆外值存储测试
+ * 功能: 验证整理时的句柄重定位、过期句柄版本校验、存储已满时回退到堆内和关闭堆外存储后句柄的释放
+ * 版本: 1.0
+ * 作者: sunyw
+ * 时间: 2023/03/22 11:20
+ */
+public class OffHeapValueStoreTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final String MODULE = "off_heap_test";
+
+    @AfterEach
+    public void tearDown() {
+        LocalCacheUtils.removeAll(MODULE);
+        LocalCacheUtils.enableOffHeap(null, 0);
+    }
+
+    /**
+     * 所有页都分配给小规格后,申请大规格的值会触发整理,被移动的值通过原句柄仍能读到
+     */
+    @Test
+    public void compactionRelocatesChunksAndKeepsHandlesReadable() {
+        OffHeapValueStore store = new OffHeapValueStore(4 * PAGE_SIZE, PAGE_SIZE, null);
+        List<Long> handles = new ArrayList<>();
+        //256字节规格每页16块,写满4页
+        for (int i = 0; i < 64; i++) {
+            handles.add(store.put(value(i, 200)));
+        }
+        assertEquals(4L * PAGE_SIZE, store.allocatedBytes());
+        //每页只保留4个值,各页都不为空,没有可直接复用的空页
+        for (int i = 0; i < 64; i++) {
+            if (i % 4 != 0) {
+                store.free(handles.get(i));
+            }
+        }
+        long moved = StageMetrics.of("offHeap").get("compactionMovedChunks");
+
+        long large = store.put(value(-1, 4000));
+
+        assertTrue(large >= 0);
+        assertEquals(value(-1, 4000), store.get(large));
+        assertEquals(12, StageMetrics.of("offHeap").get("compactionMovedChunks") - moved);
+        for (int i = 0; i < 64; i += 4) {
+            assertEquals(value(i, 200), store.get(handles.get(i)));
+        }
+        assertEquals(17, store.liveValues());
+        assertEquals(4L * PAGE_SIZE, store.allocatedBytes());
+    }
+
+    /**
+     * 句柄释放后被重新分配,旧句柄读取返回null,重复释放旧句柄不影响新值
+     */
+    @Test
+    public void staleHandleIsRejectedAfterFreeAndReuse() {
+        OffHeapValueStore store = new OffHeapValueStore(4 * PAGE_SIZE, PAGE_SIZE, null);
+        long stale = store.put(value(1, 300));
+        store.free(stale);
+
+        long reused = store.put(value(2, 300));
+
+        assertEquals((int) stale, (int) reused);
+        assertNotEquals(stale, reused);
+        assertNull(store.get(stale));
+        store.free(stale);
+        assertEquals(value(2, 300), store.get(reused));
+        assertEquals(1, store.liveValues());
+    }
+
+    /**
+     * 存储已满或值超过页大小时,LocalCacheUtils把值保存在堆内,读取结果不变
+     */
+    @Test
+    public void localCacheFallsBackToHeapWhenStoreIsFullOrValueTooLarge() {
+        OffHeapValueStore store = new OffHeapValueStore(PAGE_SIZE, PAGE_SIZE, null);
+        LocalCacheUtils.enableOffHeap(store, 100);
+
+        LocalCacheUtils.put(MODULE, "offHeap", value(1, 3000), 60000L);
+        LocalCacheUtils.put(MODULE, "full", value(2, 3000), 60000L);
+        LocalCacheUtils.put(MODULE, "tooLarge", value(3, PAGE_SIZE + 1), 60000L);
+        LocalCacheUtils.put(MODULE, "short", value(4, 50), 60000L);
+
+        assertEquals(1, store.liveValues());
+        assertEquals(value(1, 3000), LocalCacheUtils.get(MODULE, "offHeap"));
+        assertEquals(value(2, 3000), LocalCacheUtils.get(MODULE, "full"));
+        assertEquals(value(3, PAGE_SIZE + 1), LocalCacheUtils.get(MODULE, "tooLarge"));
+        assertEquals(value(4, 50), LocalCacheUtils.get(MODULE, "short"));
+
+        LocalCacheUtils.remove(MODULE, "offHeap");
+        assertEquals(0, store.liveValues());
+    }
+
+    /**
+     * 关闭堆外存储后,已有的句柄仍能读取,被移除时释放到原来的存储
+     */
+    @Test
+    public void handlesStayUsableAfterOffHeapIsDisabled() {
+        OffHeapValueStore store = new OffHeapValueStore(PAGE_SIZE, PAGE_SIZE, null);
+        LocalCacheUtils.enableOffHeap(store, 100);
+        LocalCacheUtils.put(MODULE, "offHeap", value(1, 3000), 60000L);
+
+        LocalCacheUtils.enableOffHeap(null, 0);
+
+        assertEquals(value(1, 3000), LocalCacheUtils.get(MODULE, "offHeap"));
+        LocalCacheUtils.remove(MODULE, "offHeap");
+        assertEquals(0, store.liveValues());
+    }
+
+    private static String value(int seed, int length) {
+        return StringUtils.rightPad(seed + ":", length, (char) ('a' + Math.floorMod(seed, 26)));
+    }
+}